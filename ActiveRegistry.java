@@ -0,0 +1,168 @@
+package top.guoziyang.mydb.backend.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 活跃事务登记表，不加锁地完成事务的开始、结束以及快照的获取
+ * 目前是独立的组件：版本管理器仍然使用全局锁保护的 Map<Long, Transaction>，尚未接入。
+ *
+ * 每个活跃事务占用一个槽位：
+ * slots 中为事务的 xid，0 表示空闲，负数表示正在申请 xid，其值为 -(占位时的 maxXid + 1)；
+ * xmins 中为事务快照中最小的 xid（没有则为自身的 xid），-1 表示快照还没有取完。
+ * maxXid 为已经公布的最大 xid，占位时记下它，扫描时据此区分扫描开始之前和之后占位的事务。
+ *
+ * 使用顺序：
+ * int slot = active.reserve();     // 必须在 tm.begin() 之前占位
+ * Transaction t = null;
+ * try {
+ *     long xid = tm.begin();
+ *     active.publish(slot, xid);
+ *     t = Transaction.newTransaction(xid, level, active, slot);
+ * } finally {
+ *     if(t == null) {
+ *         // 否则槽位会一直处于申请状态，在它之后开始的 snapshot 和 oldestVisible 都会阻塞
+ *         active.release(slot);
+ *     }
+ * }
+ * ...
+ * tm.commit(xid);                  // 先修改事务状态
+ * active.release(t.slot);          // 再释放槽位
+ */
+public class ActiveRegistry {
+
+    private static final long FREE = 0;
+    private static final long PENDING = -1;
+
+    private AtomicLongArray slots;
+    private AtomicLongArray xmins;
+    private int mask;
+    private AtomicLong maxXid;
+
+    public ActiveRegistry(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new AtomicLongArray(size);
+        xmins = new AtomicLongArray(size);
+        mask = size - 1;
+        maxXid = new AtomicLong();
+    }
+
+    /**
+     * 占用一个空闲槽位，从随机位置开始查找以减少线程间的冲突
+     */
+    public int reserve() throws Exception {
+        long pending = -(maxXid.get() + 1);
+        int start = ThreadLocalRandom.current().nextInt();
+        for(int i = 0; i <= mask; i ++) {
+            int slot = (start + i) & mask;
+            if(slots.get(slot) == FREE && slots.compareAndSet(slot, FREE, pending)) {
+                xmins.set(slot, PENDING);
+                return slot;
+            }
+        }
+        throw Error.DatabaseBusyException;
+    }
+
+    public void publish(int slot, long xid) {
+        slots.set(slot, xid);
+        long max = maxXid.get();
+        while(max < xid && !maxXid.compareAndSet(max, xid)) {
+            max = maxXid.get();
+        }
+    }
+
+    public void release(int slot) {
+        // 先清 xmins，槽位空闲后可能马上被其他事务占用
+        xmins.set(slot, FREE);
+        slots.set(slot, FREE);
+    }
+
+    /**
+     * 正在申请 xid 的槽位是否在 max 公布之后才占位
+     * 这样的事务在扫描开始之后才调用 tm.begin()，xid 一定大于 max，扫描时不需要等待
+     */
+    private static boolean reservedAfter(long x, long max) {
+        return -x - 1 > max;
+    }
+
+    /**
+     * 获取除 xid 之外的活跃事务集合，并公布该快照中最小的 xid
+     * 遇到扫描开始之前就在申请 xid 的槽位时等待其完成：那个事务的 xid 可能比当前事务更小，不能漏掉。
+     * 在扫描开始之后才占位的事务，xid 一定比当前事务大，不影响可见性判断，也不需要等待，
+     * 所以每个槽位至多等待一次 tm.begin()，持续不断的新事务不会让快照无法完成。
+     */
+    public Map<Long, Boolean> snapshot(int slot, long xid) {
+        long max = maxXid.get();
+        Map<Long, Boolean> snapshot = new HashMap<>();
+        long xmin = xid;
+        for(int i = 0; i <= mask; i ++) {
+            long x = slots.get(i);
+            while(x < 0 && !reservedAfter(x, max)) {
+                Thread.yield();
+                x = slots.get(i);
+            }
+            if(x > 0 && x != xid) {
+                snapshot.put(x, true);
+                xmin = Math.min(xmin, x);
+            }
+        }
+        xmins.set(slot, xmin);
+        return snapshot;
+    }
+
+    /**
+     * 不需要快照的事务（读提交）直接以自身的 xid 作为 xmin
+     */
+    public void publishXmin(int slot, long xid) {
+        xmins.set(slot, xid);
+    }
+
+    /**
+     * 所有活跃事务快照中最小的 xid 与 maxXid + 1 中的较小者，只扫描一遍
+     * 比它更早结束的事务，其修改对所有活跃事务以及之后开始的事务的可见性都已确定。
+     *
+     * 扫描开始之前占位的事务在扫描时一直占着槽位，等待其申请 xid 和取快照完成后计入 xmin。
+     * 扫描开始之后占位的事务可能被漏掉，但它的 xid 大于扫描开始时的 maxXid；
+     * 它的快照中比 maxXid 小的 xid 属于扫描开始之前就在运行的事务，已经计入。
+     * 因此不需要在有新事务开始时重新扫描，每个槽位至多等待一次 tm.begin() 和一次快照，
+     * 持续不断的新事务不会让它无法返回。
+     */
+    public long oldestVisible() {
+        long max = maxXid.get();
+        long min = max + 1;
+        for(int i = 0; i <= mask; i ++) {
+            while(true) {
+                long x = slots.get(i);
+                if(x == FREE || (x < 0 && reservedAfter(x, max))) {
+                    break;
+                }
+                if(x < 0) {
+                    // 扫描开始之前占位，正在申请 xid
+                    Thread.yield();
+                    continue;
+                }
+                long xmin = xmins.get(i);
+                if(xmin == FREE) {
+                    // 正在释放，事务已经结束
+                    break;
+                }
+                if(xmin == PENDING) {
+                    // 正在取快照
+                    Thread.yield();
+                    continue;
+                }
+                // 槽位已被重新占用时，原来的事务已经结束，新的事务在扫描开始之后才占位
+                if(slots.get(i) == x) {
+                    min = Math.min(min, xmin);
+                }
+                break;
+            }
+        }
+        return min;
+    }
+}
@@ -0,0 +1,172 @@
+package top.guoziyang.mydb.backend.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 事务开始/提交吞吐量对比：全局锁 + Map 与 ActiveRegistry
+ * 每次操作为一次可重复读事务的开始（含快照）与提交，xid 由计数器模拟 tm.begin()
+ *
+ * 之后在不断有事务开始的同时，由另一个线程反复调用 oldestVisible，
+ * tm.begin() 用加锁并忙等 beginMicros 微秒模拟（真实的 tm.begin() 串行执行并刷盘），
+ * 输出 oldestVisible 的调用次数、最长耗时，以及返回值超过整个调用期间都在运行的事务 xmin 的次数。
+ *
+ * 用法：ActiveRegistryBench [每轮毫秒数] [最大线程数] [beginMicros]
+ */
+public class ActiveRegistryBench {
+
+    private interface Workload {
+        void run(AtomicLong xids) throws Exception;
+    }
+
+    private interface Observer {
+        void run(long deadline) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors() * 2;
+        long beginMicros = args.length > 2 ? Long.parseLong(args[2]) : 20;
+
+        System.out.println("threads\tlocked(ops/s)\tregistry(ops/s)");
+        for(int threads = 1; threads <= maxThreads; threads <<= 1) {
+            Map<Long, Transaction> active = new HashMap<>();
+            Lock lock = new ReentrantLock();
+            double locked = measure(threads, millis, xids -> {
+                long xid = xids.incrementAndGet();
+                lock.lock();
+                try {
+                    active.put(xid, Transaction.newTransaction(xid, 1, active));
+                } finally {
+                    lock.unlock();
+                }
+                lock.lock();
+                try {
+                    active.remove(xid);
+                } finally {
+                    lock.unlock();
+                }
+            });
+
+            ActiveRegistry registry = new ActiveRegistry(threads * 2);
+            double lockFree = measure(threads, millis, xids -> {
+                int slot = registry.reserve();
+                long xid = xids.incrementAndGet();
+                registry.publish(slot, xid);
+                Transaction t = Transaction.newTransaction(xid, 1, registry, slot);
+                registry.release(t.slot);
+            });
+
+            System.out.println(threads + "\t" + (long) locked + "\t" + (long) lockFree);
+        }
+
+        System.out.println();
+        System.out.println("threads\tbegins(ops/s)\toldestVisible(calls/s)\tmaxLatency(us)\tviolations");
+        for(int threads = 1; threads <= maxThreads; threads <<= 1) {
+            horizon(threads, millis, beginMicros);
+        }
+    }
+
+    private static void horizon(int threads, long millis, long beginMicros) throws Exception {
+        ActiveRegistry registry = new ActiveRegistry(threads * 2);
+        Lock tmLock = new ReentrantLock();
+        AtomicInteger ids = new AtomicInteger();
+        ThreadLocal<Integer> id = ThreadLocal.withInitial(ids::getAndIncrement);
+        // 每个线程当前事务的 xmin（0 表示没有事务）以及已结束的事务数，用于检查 oldestVisible 的返回值
+        AtomicLongArray xmins = new AtomicLongArray(threads);
+        AtomicLongArray ended = new AtomicLongArray(threads);
+        long[] observed = new long[3];     // 调用次数，最长耗时，违反次数
+        double begins = measure(threads, millis, xids -> {
+            int me = id.get();
+            int slot = registry.reserve();
+            long xid;
+            tmLock.lock();
+            try {
+                long until = System.nanoTime() + beginMicros * 1000;
+                while(System.nanoTime() < until);
+                xid = xids.incrementAndGet();
+            } finally {
+                tmLock.unlock();
+            }
+            registry.publish(slot, xid);
+            Transaction t = Transaction.newTransaction(xid, 1, registry, slot);
+            long xmin = xid;
+            for(long x : t.snapshot.keySet()) {
+                xmin = Math.min(xmin, x);
+            }
+            xmins.set(me, xmin);
+            // 模拟事务执行
+            long until = System.nanoTime() + beginMicros * 1000;
+            while(System.nanoTime() < until);
+            xmins.set(me, 0);
+            ended.incrementAndGet(me);
+            registry.release(t.slot);
+        }, deadline -> {
+            long[] before = new long[threads];
+            long[] xmin = new long[threads];
+            while(System.nanoTime() < deadline) {
+                for(int i = 0; i < threads; i ++) {
+                    before[i] = ended.get(i);
+                    xmin[i] = xmins.get(i);
+                }
+                long start = System.nanoTime();
+                long horizon = registry.oldestVisible();
+                observed[1] = Math.max(observed[1], System.nanoTime() - start);
+                observed[0] ++;
+                // 整个调用期间一直在运行的事务，其 xmin 不能小于返回值
+                for(int i = 0; i < threads; i ++) {
+                    if(xmin[i] != 0 && ended.get(i) == before[i] && xmin[i] < horizon) {
+                        observed[2] ++;
+                    }
+                }
+            }
+        });
+        double calls = observed[0] * 1e9 / (millis * 1e6);
+        System.out.println(threads + "\t" + (long) begins + "\t" + (long) calls + "\t" + observed[1] / 1000 + "\t" + observed[2]);
+    }
+
+    private static double measure(int threads, long millis, Workload workload) throws Exception {
+        return measure(threads, millis, workload, null);
+    }
+
+    // observer 不为 null 时，在另一个线程中与 workload 同时运行到 deadline
+    private static double measure(int threads, long millis, Workload workload, Observer observer) throws Exception {
+        AtomicLong xids = new AtomicLong();
+        AtomicLong ops = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long[] deadline = new long[1];
+        for(int i = 0; i < threads; i ++) {
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    long n = 0;
+                    while(System.nanoTime() < deadline[0]) {
+                        workload.run(xids);
+                        n ++;
+                    }
+                    ops.addAndGet(n);
+                } catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[i].start();
+        }
+        long begin = System.nanoTime();
+        deadline[0] = begin + millis * 1000000;
+        start.countDown();
+        if(observer != null) {
+            observer.run(deadline[0]);
+        }
+        for(Thread w : workers) {
+            w.join();
+        }
+        return ops.get() * 1e9 / (System.nanoTime() - begin);
+    }
+}
@@ -0,0 +1,236 @@
+package top.guoziyang.mydb.backend.dm;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import com.google.common.primitives.Bytes;
+
+import top.guoziyang.mydb.backend.dm.logger.LogArchive;
+import top.guoziyang.mydb.backend.dm.logger.LogCodec;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
+import top.guoziyang.mydb.backend.dm.logger.LoggerImpl;
+import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.dm.page.PageOne;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 在线备份
+ *
+ * 全量备份：[.db] [.xid] [.log] [.backup]
+ * 增量备份：[.xid] [.log] [.backup]
+ * .backup 记录本次备份覆盖的日志范围 [From] [To]，均为 8 字节 long
+ *
+ * 备份时数据库可以继续写入，复制顺序为：页面文件 -> xid 文件 -> 日志。
+ * 页面文件是“模糊”的拷贝，但写入页面的任何修改都先写了日志，
+ * 而日志在 xid 文件之后才截取，所以拷贝中出现的修改一定在日志范围内；
+ * xid 文件中已提交的事务，其日志也一定全部在范围内。
+ * xid 文件只复制文件头中 XIDCounter 覆盖的部分，见 copyXid。
+ * 复制 xid 文件之后开始的事务也可能出现在日志中，恢复时把 xid 文件扩展到日志中最大的 xid，见 extendXid。
+ *
+ * 备份在数据库运行时进行，出错时只向调用者抛出异常，不会 panic。
+ * 恢复时把所有备份的日志依次相连地只读打开（已归档的直接按块解压），由 Recover 从头重做、回滚即可得到一致的状态。
+ */
+public class Backup {
+
+    public static final String BACKUP_SUFFIX = ".backup";
+
+    // 与 PageCacheImpl、TransactionManagerImpl 中的文件后缀一致
+    private static final String DB_SUFFIX = ".db";
+    private static final String XID_SUFFIX = ".xid";
+
+    /**
+     * 全量备份
+     * @param path 数据库路径
+     * @param dest 备份路径
+     * @return 本次备份截止的日志位置，作为下一次增量备份的起点
+     */
+    public static long full(DataManager dm, String path, String dest) throws Exception {
+        return full(dm, path, dest, null);
+    }
+
+    // afterXidCopy 不为 null 时，在复制 xid 文件之后、截取日志之前调用，用于测试两者之间开始的事务
+    static long full(DataManager dm, String path, String dest, Callable<?> afterXidCopy) throws Exception {
+        checkDest(dest, true);
+        copy(path + DB_SUFFIX, dest + DB_SUFFIX);
+        return backupLog(dm, path, dest, 0, afterXidCopy);
+    }
+
+    /**
+     * 增量备份，只复制 from 之后写入的日志
+     * @param from 上一次备份返回的日志位置
+     */
+    public static long incremental(DataManager dm, String path, String dest, long from) throws Exception {
+        checkDest(dest, false);
+        return backupLog(dm, path, dest, from, null);
+    }
+
+    /**
+     * 在后台压缩备份中的日志，restore 时 Recover 直接读取压缩后的日志
+     * 只能压缩已经完成的备份，见 LogArchive.archive
+     */
+    public static Future<Double> archive(String dest, LogCodec codec) {
+        return LogArchive.archiveAsync(dest, codec);
+    }
+
+    /**
+     * 由一个全量备份和之后按顺序的若干增量备份恢复出数据库
+     * 在备份的日志上执行 Recover，恢复出的数据库已经一致、处于正常关闭的状态，日志为空
+     * @param mem 恢复时页面缓存的大小
+     */
+    public static void restore(String path, long mem, String... backups) throws Exception {
+        for(String suffix : new String[]{DB_SUFFIX, XID_SUFFIX, LoggerImpl.LOG_SUFFIX}) {
+            if(new File(path + suffix).exists()) {
+                throw Error.FileExistsException;
+            }
+        }
+        long to = 0;
+        for(String backup : backups) {
+            byte[] raw = Files.readAllBytes(new File(backup + BACKUP_SUFFIX).toPath());
+            long from = Parser.parseLong(Arrays.copyOfRange(raw, 0, 8));
+            if(from != to) {
+                // 增量备份之间不连续
+                throw Error.BadLogFileException;
+            }
+            to = Parser.parseLong(Arrays.copyOfRange(raw, 8, 16));
+        }
+        copy(backups[0] + DB_SUFFIX, path + DB_SUFFIX);
+        copyXid(backups[backups.length-1] + XID_SUFFIX, path + XID_SUFFIX);
+
+        // 只读地打开，备份本身不会被修改
+        Logger lg = Logger.openBackup(backups);
+        try {
+            extendXid(path + XID_SUFFIX, Recover.maxXid(lg));
+            TransactionManager tm = TransactionManager.open(path);
+            PageCache pc = PageCache.open(path, mem);
+            Recover.recover(tm, lg, pc);
+            // 页面已经一致，标记为正常关闭，之后打开时不再对空日志执行 Recover
+            Page pageOne = pc.getPage(1);
+            PageOne.setVcClose(pageOne);
+            pageOne.release();
+            pc.close();
+            tm.close();
+        } finally {
+            lg.close();
+        }
+        Logger.create(path).close();
+    }
+
+    private static long backupLog(DataManager dm, String path, String dest, long from, Callable<?> afterXidCopy) throws Exception {
+        copyXid(path + XID_SUFFIX, dest + XID_SUFFIX);
+        if(afterXidCopy != null) {
+            afterXidCopy.call();
+        }
+        long to = dm.logSize();
+        dm.copyLog(dest, from, to);
+        byte[] raw = Bytes.concat(Parser.long2Byte(from), Parser.long2Byte(to));
+        Files.write(new File(dest + BACKUP_SUFFIX).toPath(), raw, StandardOpenOption.CREATE_NEW);
+        return to;
+    }
+
+    // 开始复制之前检查备份路径，避免复制到一半才失败
+    private static void checkDest(String dest, boolean full) throws Exception {
+        File dir = new File(dest).getAbsoluteFile().getParentFile();
+        if(dir == null || !dir.isDirectory()) {
+            throw new NoSuchFileException(String.valueOf(dir));
+        }
+        String[] suffixes = {DB_SUFFIX, XID_SUFFIX, LoggerImpl.LOG_SUFFIX, LogArchive.ARCHIVE_SUFFIX, BACKUP_SUFFIX};
+        for(String suffix : suffixes) {
+            if(!full && suffix.equals(DB_SUFFIX)) {
+                continue;
+            }
+            if(new File(dest + suffix).exists()) {
+                throw Error.FileExistsException;
+            }
+        }
+    }
+
+    private static void copy(String src, String dest) throws Exception {
+        File f = new File(dest);
+        if(f.exists()) {
+            throw Error.FileExistsException;
+        }
+        Files.copy(new File(src).toPath(), f.toPath());
+    }
+
+    // xid 文件：[XIDCounter] [XID1 的状态] [XID2 的状态] ...
+    private static final int LEN_XID_HEADER_LENGTH = 8;
+
+    /**
+     * 复制 xid 文件
+     * tm.begin 先写入新事务的状态（文件变长），再更新 XIDCounter，
+     * 直接复制可能得到长度与 XIDCounter 不符的文件，打开时会 panic。
+     * 这里先读出 XIDCounter，只复制它覆盖的部分：这些事务的状态在 XIDCounter 更新之前都已写入。
+     */
+    private static void copyXid(String src, String dest) throws Exception {
+        File f = new File(dest);
+        if(f.exists()) {
+            throw Error.FileExistsException;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(src, "r")) {
+            FileChannel fc = in.getChannel();
+            long counter = readXidCounter(fc);
+            long length = LEN_XID_HEADER_LENGTH + counter;
+            if(fc.size() < length) {
+                throw Error.BadXIDFileException;
+            }
+            try (RandomAccessFile out = new RandomAccessFile(f, "rw")) {
+                FileChannel ofc = out.getChannel();
+                ofc.write(ByteBuffer.wrap(Parser.long2Byte(counter)));
+                long pos = LEN_XID_HEADER_LENGTH;
+                while(pos < length) {
+                    pos += fc.transferTo(pos, length - pos, ofc);
+                }
+                ofc.force(false);
+            }
+        }
+    }
+
+    /**
+     * 把 xid 文件扩展到 maxXid
+     * 日志在 xid 文件之后才截取，其中可能有 XIDCounter 之后才开始的事务，
+     * 否则 Recover 读到文件末尾之外，把它们当作活跃事务 abort 时写到文件之外，
+     * 之后 XIDCounter 与文件长度不符，新事务也会重用这些 xid。
+     * 扩展出的事务状态为活跃，与复制 xid 文件时仍在运行的事务一样，由 Recover 回滚并 abort。
+     */
+    private static void extendXid(String path, long maxXid) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+            FileChannel fc = raf.getChannel();
+            long counter = readXidCounter(fc);
+            if(maxXid <= counter) {
+                return;
+            }
+            // 活跃状态为 0
+            ByteBuffer zeros = ByteBuffer.allocate(4096);
+            long pos = LEN_XID_HEADER_LENGTH + counter;
+            long end = LEN_XID_HEADER_LENGTH + maxXid;
+            while(pos < end) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), end - pos));
+                pos += fc.write(zeros, pos);
+            }
+            fc.write(ByteBuffer.wrap(Parser.long2Byte(maxXid)), 0);
+            fc.force(false);
+        }
+    }
+
+    private static long readXidCounter(FileChannel fc) throws Exception {
+        ByteBuffer header = ByteBuffer.allocate(LEN_XID_HEADER_LENGTH);
+        while(header.hasRemaining()) {
+            if(fc.read(header, header.position()) < 0) {
+                throw Error.BadXIDFileException;
+            }
+        }
+        return Parser.parseLong(header.array());
+    }
+}
@@ -0,0 +1,120 @@
+package top.guoziyang.mydb.backend.dm;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.logger.DeflateCodec;
+import top.guoziyang.mydb.backend.dm.logger.LogArchive;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+
+/**
+ * 在线备份与恢复的往返测试
+ *
+ * 在复制 xid 文件之后、截取日志之前开始两个事务（一个提交，一个仍在运行），
+ * 它们的日志在备份的范围内，但不在备份的 xid 文件中。
+ * 备份的日志归档压缩后再恢复，Recover 直接读取压缩的日志。恢复后校验：
+ * 已提交事务的数据存在，备份时未提交的事务全部被 abort，其插入全部无效，
+ * 新事务不会重用这些 xid，xid 文件可以被再次打开。
+ *
+ * 用法：BackupHarness [随机种子]
+ */
+public class BackupHarness {
+
+    private static final long MEM = 64 * (1 << 20);
+
+    public static void main(String[] args) throws Exception {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.currentTimeMillis();
+        Random random = new Random(seed);
+        System.out.println("seed = " + seed);
+
+        File dir = Files.createTempDirectory("mydb-backup").toFile();
+        String path = new File(dir, "db").getPath();
+        String dest = new File(dir, "full").getPath();
+        String restored = new File(dir, "restored").getPath();
+        try {
+            TransactionManager tm = TransactionManager.create(path);
+            DataManager dm = DataManager.create(path, MEM, tm);
+
+            byte[] value = randomValue(random);
+            long committedXid = tm.begin();
+            long committedUid = dm.insert(committedXid, value);
+            tm.commit(committedXid);
+
+            long runningXid = tm.begin();
+            long runningUid = dm.insert(runningXid, randomValue(random));
+
+            long[] lateXids = new long[2];
+            long[] lateUids = new long[2];
+            Backup.full(dm, path, dest, () -> {
+                lateXids[0] = tm.begin();
+                lateUids[0] = dm.insert(lateXids[0], randomValue(random));
+                tm.commit(lateXids[0]);
+                lateXids[1] = tm.begin();
+                lateUids[1] = dm.insert(lateXids[1], randomValue(random));
+                return null;
+            });
+            // 数据库正在写入的日志不能归档
+            try {
+                LogArchive.archive(path, new DeflateCodec());
+                throw new RuntimeException("live log " + path + " archived");
+            } catch(IllegalArgumentException e) {
+            }
+            dm.close();
+            tm.close();
+
+            Backup.archive(dest, new DeflateCodec()).get();
+            Backup.restore(restored, MEM, dest);
+            TransactionManager tm2 = TransactionManager.open(restored);
+            DataManager dm2 = DataManager.open(restored, MEM, tm2);
+
+            DataItem di = dm2.read(committedUid);
+            if(di == null) {
+                throw new RuntimeException("committed uid " + committedUid + " lost");
+            }
+            SubArray sa = di.data();
+            boolean same = Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), value);
+            di.release();
+            if(!same) {
+                throw new RuntimeException("committed uid " + committedUid + " has wrong value");
+            }
+            long[] xids = {runningXid, lateXids[0], lateXids[1]};
+            long[] uids = {runningUid, lateUids[0], lateUids[1]};
+            for(int i = 0; i < xids.length; i ++) {
+                if(!tm2.isAborted(xids[i])) {
+                    throw new RuntimeException("xid " + xids[i] + " not aborted");
+                }
+                di = dm2.read(uids[i]);
+                if(di != null) {
+                    di.release();
+                    throw new RuntimeException("uid " + uids[i] + " of xid " + xids[i] + " still valid");
+                }
+            }
+
+            long xid = tm2.begin();
+            if(xid <= lateXids[1]) {
+                throw new RuntimeException("xid " + xid + " reused");
+            }
+            tm2.commit(xid);
+            dm2.close();
+            tm2.close();
+            // XIDCounter 与文件长度不符时 open 会 panic
+            TransactionManager.open(restored).close();
+            System.out.println("Backup round trip over.");
+        } finally {
+            for(File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static byte[] randomValue(Random random) {
+        byte[] value = new byte[32];
+        random.nextBytes(value);
+        return value;
+    }
+}
@@ -0,0 +1,66 @@
+package top.guoziyang.mydb.backend.dm;
+
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.dm.page.PageX;
+import top.guoziyang.mydb.backend.utils.Types;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 批量导入
+ *
+ * 数据只写入新分配的页面，不逐条记录插入日志。
+ * 一个页面写满（或 close）时，整页记一条 Recover.pageLog 日志，之后才释放页面，
+ * 保证页面被刷回磁盘前日志已经落盘。
+ * 在 close 之前，返回的 uid 对应的数据尚未记录日志，不应被其他事务引用。
+ * 无论导入是否出错都必须 close，否则最后一个页面会一直被占用，其中的数据也不会记录日志。
+ */
+public class BulkLoader implements AutoCloseable {
+
+    private DataManagerImpl dm;
+    private long xid;
+
+    private Page pg;        // 当前正在填充的页面
+    private short start;    // 当前页面第一个 DataItem 的偏移
+
+    BulkLoader(DataManagerImpl dm, long xid) {
+        this.dm = dm;
+        this.xid = xid;
+    }
+
+    public long insert(byte[] data) throws Exception {
+        byte[] raw = DataItem.wrapDataItemRaw(data);
+        if(raw.length > PageX.MAX_FREE_SPACE) {
+            throw Error.DataTooLargeException;
+        }
+        if(pg != null && PageX.getFreeSpace(pg) < raw.length) {
+            seal();
+        }
+        if(pg == null) {
+            int pgno = dm.pc.newPage(PageX.initRaw());
+            pg = dm.pc.getPage(pgno);
+            start = PageX.getFSO(pg);
+        }
+        short offset = PageX.insert(pg, raw);
+        return Types.addressToUid(pg.getPageNumber(), offset);
+    }
+
+    /**
+     * 为最后一个页面记录日志并释放，之后导入的数据即可正常使用
+     * 出错时同样要调用：已写入的数据属于 xid，随事务的回滚一起失效
+     */
+    @Override
+    public void close() {
+        if(pg != null) {
+            seal();
+        }
+    }
+
+    private void seal() {
+        byte[] log = Recover.pageLog(xid, pg, start);
+        dm.logger.log(log);
+        dm.pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
+        pg.release();
+        pg = null;
+    }
+}
@@ -11,6 +11,14 @@ public interface DataManager {
     long insert(long xid, byte[] data) throws Exception;
     void close();
 
+    // 批量导入模式，数据写入新页面并按页记录日志
+    BulkLoader bulkLoader(long xid);
+
+    // 当前日志末尾的位置，在线备份以此为截止点
+    long logSize();
+    // 把日志中 [from, to) 的记录复制为 dest 处独立的日志文件
+    void copyLog(String dest, long from, long to) throws Exception;
+
     public static DataManager create(String path, long mem, TransactionManager tm) {
         PageCache pc = PageCache.create(path, mem);
         Logger lg = Logger.create(path);
@@ -21,16 +29,39 @@ public interface DataManager {
     }
 
     public static DataManager open(String path, long mem, TransactionManager tm) {
+        return open(path, mem, tm, null);
+    }
+
+    // timing 不为 null 时，记录打开过程中各阶段的耗时
+    public static DataManager open(String path, long mem, TransactionManager tm, OpenTiming timing) {
+        long begin = System.nanoTime();
         PageCache pc = PageCache.open(path, mem);
+        long t = System.nanoTime();
         Logger lg = Logger.open(path);
+        long logOpenNanos = System.nanoTime() - t;
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        long recoverNanos = 0;
         if(!dm.loadCheckPageOne()) {
+            t = System.nanoTime();
             Recover.recover(tm, lg, pc);
+            recoverNanos = System.nanoTime() - t;
         }
         dm.fillPageIndex();
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
 
+        if(timing != null) {
+            timing.logOpenNanos = logOpenNanos;
+            timing.recoverNanos = recoverNanos;
+            timing.openNanos = System.nanoTime() - begin;
+        }
         return dm;
     }
+
+    // DataManager.open 各阶段的耗时，单位纳秒
+    class OpenTiming {
+        public long logOpenNanos;   // Logger.open，包括检查并移除 BadTail
+        public long recoverNanos;   // Recover.recover，正常关闭时为 0
+        public long openNanos;      // 整个 open
+    }
 }
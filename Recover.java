@@ -11,6 +11,7 @@ import com.google.common.primitives.Bytes;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.logger.LogArchive;
 import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.dm.page.PageX;
@@ -23,6 +24,7 @@ public class Recover {
 
     private static final byte LOG_TYPE_INSERT = 0;//插入类型
     private static final byte LOG_TYPE_UPDATE = 1;//更新类型
+    private static final byte LOG_TYPE_PAGE = 2;//批量导入的整页类型
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
@@ -73,8 +75,8 @@ public class Recover {
             if(log == null) break;
             // 定义变量用于存储当前日志涉及的页面号
             int pgno;
-            // 判断当前日志是否为插入类型的日志
-            if(isInsertLog(log)) {
+            // 判断当前日志是否为插入类型或整页类型的日志，两者格式相同
+            if(isInsertLog(log) || isPageLog(log)) {
                 // 如果是插入类型的日志，解析日志信息
                 InsertLogInfo li = parseInsertLog(log);
                 // 获取插入日志涉及的页面号
@@ -110,6 +112,10 @@ public class Recover {
         // 输出回滚操作完成的信息
         System.out.println("Undo Transactions Over.");
 
+        // 从归档日志恢复时，输出压缩率和解压速度
+        if(lg instanceof LogArchive) {
+            System.out.println(((LogArchive) lg).stats());
+        }
         // 输出恢复完成的信息
         System.out.println("Recovery Over.");
     }
@@ -142,6 +148,12 @@ public class Recover {
                     // 如果事务已提交，执行插入日志的重做操作
                     doInsertLog(pc, log, REDO);
                 }
+            } else if(isPageLog(log)) {
+                // 整页日志只在事务已提交时重做
+                InsertLogInfo li = parseInsertLog(log);
+                if(!tm.isActive(li.xid)) {
+                    doPageLog(pc, log, REDO);
+                }
             } else {
                 // 如果是更新类型的日志，解析日志信息
                 UpdateLogInfo xi = parseUpdateLog(log);
@@ -171,7 +183,7 @@ public class Recover {
         while(true) {
             byte[] log = lg.next();
             if(log == null) break;
-            if(isInsertLog(log)) {
+            if(isInsertLog(log) || isPageLog(log)) {
                 InsertLogInfo li = parseInsertLog(log);
                 long xid = li.xid;
                 if(tm.isActive(xid)) {
@@ -199,6 +211,8 @@ public class Recover {
                 byte[] log = logs.get(i);
                 if(isInsertLog(log)) {
                     doInsertLog(pc, log, UNDO);
+                } else if(isPageLog(log)) {
+                    doPageLog(pc, log, UNDO);
                 } else {
                     doUpdateLog(pc, log, UNDO);
                 }
@@ -207,10 +221,30 @@ public class Recover {
         }
     }
 
+    // 日志中出现的最大 xid，各类日志的 xid 都位于 OF_XID
+    static long maxXid(Logger lg) {
+        lg.rewind();
+        long maxXid = 0;
+        while(true) {
+            byte[] log = lg.next();
+            if(log == null) break;
+            long xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_XID+8));
+            if(xid > maxXid) {
+                maxXid = xid;
+            }
+        }
+        lg.rewind();
+        return maxXid;
+    }
+
     private static boolean isInsertLog(byte[] log) {
         return log[0] == LOG_TYPE_INSERT;
     }
 
+    private static boolean isPageLog(byte[] log) {
+        return log[0] == LOG_TYPE_PAGE;
+    }
+
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE+1;
@@ -310,4 +344,48 @@ public class Recover {
             pg.release();
         }
     }
+
+    /**
+     * 批量导入时，一个新页面写满后整体记一条日志，代替逐条的插入日志
+     * 格式与插入日志相同：[LogType] [XID] [Pgno] [Offset] [Raw]
+     * Offset 为页面数据区的起始位置，Raw 为页面上已写入的全部 DataItem
+     */
+    public static byte[] pageLog(long xid, Page pg, short offset) {
+        byte[] logTypeRaw = {LOG_TYPE_PAGE};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
+        byte[] offsetRaw = Parser.short2Byte(offset);
+        byte[] raw = Arrays.copyOfRange(pg.getData(), offset, PageX.getFSO(pg));
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+    }
+
+    // DataItem: [ValidFlag] [DataSize] [Data]
+    private static final int OF_ITEM_SIZE = 1;
+    private static final int OF_ITEM_DATA = OF_ITEM_SIZE+2;
+
+    private static void doPageLog(PageCache pc, byte[] log, int flag) {
+        InsertLogInfo li = parseInsertLog(log);
+        Page pg = null;
+        try {
+            pg = pc.getPage(li.pgno);
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            if(flag == UNDO) {
+                // 逐个将页面上的 DataItem 置为无效
+                int pos = 0;
+                while(pos < li.raw.length) {
+                    byte[] item = Arrays.copyOfRange(li.raw, pos, pos+OF_ITEM_DATA);
+                    DataItem.setDataItemRawInvalid(item);
+                    System.arraycopy(item, 0, li.raw, pos, item.length);
+                    pos += OF_ITEM_DATA + Parser.parseShort(Arrays.copyOfRange(item, OF_ITEM_SIZE, OF_ITEM_DATA));
+                }
+            }
+            // 只覆盖整页日志涵盖的范围，不影响之后其他事务插入到该页的数据
+            PageX.recoverInsert(pg, li.raw, li.offset);
+        } finally {
+            pg.release();
+        }
+    }
 }
@@ -0,0 +1,296 @@
+package top.guoziyang.mydb.backend.dm;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import com.google.common.primitives.Bytes;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.logger.LoggerImpl;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.utils.Parser;
+
+/**
+ * 崩溃恢复的正确性与耗时测试
+ *
+ * 每一轮：用 DataManager 执行随机的插入、更新、批量导入和提交，
+ * 在随机位置停止，不 close dm 和 tm 而是直接丢弃，
+ * 随机在日志尾部追加半条日志或垃圾数据，或者追加一条写到一半的插入日志（写日志时崩溃），
+ * 然后重新打开并校验：
+ * 已提交事务的数据全部存在且为最后一次提交的值，未提交事务的插入全部无效、更新全部回滚，
+ * 日志尾部被截回崩溃前的长度。
+ *
+ * 注意这只是在同一个进程中丢弃对象，并不等同于进程被杀死：
+ * 页面在引用计数归零时就已写回 .db（PageCacheImpl.releaseForCache），丢失的只有仍被引用的页面，
+ * 文件的写入也都还在操作系统的缓存中。
+ *
+ * 用法：RecoverHarness [轮数] [随机种子] [规模1 规模2 ...]
+ * 规模为每轮执行的操作数，每轮输出日志大小、活跃事务数以及打开和恢复的耗时
+ */
+public class RecoverHarness {
+
+    private static final long MEM = 64 * (1 << 20);
+    private static final int VALUE_LEN = 32;
+    private static final int MAX_OPEN = 8;
+
+    private static final int TAIL_NONE = 0;
+    private static final int TAIL_TORN = 1;     // 写了一半的日志
+    private static final int TAIL_GARBAGE = 2;  // 随机字节
+    private static final int TAIL_CUT = 3;      // 活跃事务的插入日志写到一半
+    private static final String[] TAIL_NAMES = {"none", "torn", "garbage", "cut"};
+
+    private Random random;
+
+    private Map<Long, byte[]> committed = new HashMap<>();          // 已提交的 uid 及其值
+    private List<Long> committedUids = new ArrayList<>();
+    private Map<Long, List<Long>> inserted = new HashMap<>();      // 活跃事务插入的 uid
+    private Map<Long, Map<Long, byte[]>> updated = new HashMap<>(); // 活跃事务更新的 uid 及新值
+    private Set<Long> owned = new HashSet<>();                     // 被活跃事务更新过的 uid
+    private List<Long> open = new ArrayList<>();
+
+    RecoverHarness(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.currentTimeMillis();
+        int[] scales = {1000, 10000, 50000};
+        if(args.length > 2) {
+            scales = new int[args.length - 2];
+            for(int i = 2; i < args.length; i ++) {
+                scales[i-2] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("seed = " + seed);
+        System.out.println("ops\tround\ttail\tlogBytes\tactive\ttmOpenMs\tlogOpenMs\trecoverMs\tdmOpenMs\trows");
+        Random seeds = new Random(seed);
+        for(int ops : scales) {
+            for(int r = 0; r < rounds; r ++) {
+                new RecoverHarness(seeds.nextLong()).round(ops, r);
+            }
+        }
+    }
+
+    private void round(int ops, int round) throws Exception {
+        File dir = Files.createTempDirectory("mydb-recover").toFile();
+        String path = new File(dir, "harness").getPath();
+        try {
+            TransactionManager tm = TransactionManager.create(path);
+            DataManager dm = DataManager.create(path, MEM, tm);
+            for(int i = 0; i < ops; i ++) {
+                step(tm, dm);
+            }
+
+            int tail = random.nextInt(TAIL_NAMES.length);
+            byte[] cutLog = null;
+            if(tail == TAIL_CUT) {
+                cutLog = cutInsertLog(tm, dm);
+            }
+            // 不关闭 dm 和 tm，模拟崩溃
+
+            File log = new File(path + LoggerImpl.LOG_SUFFIX);
+            long validBytes = log.length();
+            if(tail == TAIL_CUT) {
+                appendCut(log, cutLog);
+            } else {
+                damageTail(log, tail);
+            }
+            long logBytes = log.length();
+
+            long begin = System.nanoTime();
+            TransactionManager tm2 = TransactionManager.open(path);
+            long tmOpenNanos = System.nanoTime() - begin;
+            DataManager.OpenTiming timing = new DataManager.OpenTiming();
+            DataManager dm2 = DataManager.open(path, MEM, tm2, timing);
+
+            int rows = verify(tm2, dm2);
+            dm2.close();
+            tm2.close();
+            if(log.length() != validBytes) {
+                throw new RuntimeException("log has " + log.length() + " bytes after recovery, expected " + validBytes);
+            }
+
+            System.out.println(ops + "\t" + round + "\t" + TAIL_NAMES[tail] + "\t" + logBytes + "\t" + open.size()
+                + "\t" + millis(tmOpenNanos) + "\t" + millis(timing.logOpenNanos) + "\t" + millis(timing.recoverNanos)
+                + "\t" + millis(timing.openNanos) + "\t" + rows);
+        } finally {
+            for(File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private void step(TransactionManager tm, DataManager dm) throws Exception {
+        if(open.isEmpty() || (open.size() < MAX_OPEN && random.nextInt(10) == 0)) {
+            long xid = tm.begin();
+            open.add(xid);
+            inserted.put(xid, new ArrayList<>());
+            updated.put(xid, new HashMap<>());
+            return;
+        }
+        long xid = open.get(random.nextInt(open.size()));
+        int op = random.nextInt(100);
+        if(op < 10) {
+            commit(tm, xid);
+        } else if(op < 12) {
+            bulkLoad(dm, xid);
+        } else if(op < 40 && !committed.isEmpty()) {
+            update(dm, xid);
+        } else {
+            byte[] value = randomValue();
+            long uid = dm.insert(xid, value);
+            inserted.get(xid).add(uid);
+            updated.get(xid).put(uid, value);
+        }
+    }
+
+    private void commit(TransactionManager tm, long xid) {
+        tm.commit(xid);
+        open.remove(Long.valueOf(xid));
+        inserted.remove(xid);
+        for(Map.Entry<Long, byte[]> e : updated.remove(xid).entrySet()) {
+            if(committed.put(e.getKey(), e.getValue()) == null) {
+                committedUids.add(e.getKey());
+            }
+            owned.remove(e.getKey());
+        }
+    }
+
+    private void bulkLoad(DataManager dm, long xid) throws Exception {
+        BulkLoader loader = dm.bulkLoader(xid);
+        try {
+            int rows = 1 + random.nextInt(500);
+            for(int i = 0; i < rows; i ++) {
+                byte[] value = randomValue();
+                long uid = loader.insert(value);
+                inserted.get(xid).add(uid);
+                updated.get(xid).put(uid, value);
+            }
+        } finally {
+            loader.close();
+        }
+    }
+
+    private void update(DataManager dm, long xid) throws Exception {
+        // 同一个 uid 同时只允许一个活跃事务修改，与 vm 层的加锁保持一致
+        long uid = committedUids.get(random.nextInt(committedUids.size()));
+        if(owned.contains(uid) && !updated.get(xid).containsKey(uid)) {
+            return;
+        }
+        byte[] value = randomValue();
+        DataItem di = dm.read(uid);
+        di.before();
+        SubArray sa = di.data();
+        System.arraycopy(value, 0, sa.raw, sa.start, VALUE_LEN);
+        di.after(xid);
+        di.release();
+        owned.add(uid);
+        updated.get(xid).put(uid, value);
+    }
+
+    private void damageTail(File log, int tail) throws Exception {
+        if(tail == TAIL_NONE) {
+            return;
+        }
+        byte[] junk;
+        if(tail == TAIL_TORN) {
+            // [Size] [Checksum] 完整，Data 只写了一部分
+            int size = 64 + random.nextInt(256);
+            byte[] data = new byte[random.nextInt(size)];
+            random.nextBytes(data);
+            junk = Bytes.concat(Parser.int2Byte(size), Parser.int2Byte(random.nextInt()), data);
+        } else {
+            junk = new byte[1 + random.nextInt(64)];
+            random.nextBytes(junk);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            raf.seek(raf.length());
+            raf.write(junk);
+        }
+    }
+
+    /**
+     * 崩溃发生在一个活跃事务写插入日志的过程中：DataManagerImpl.insert 先写日志再修改页面，
+     * 所以此时页面还没有被修改，只生成日志而不插入
+     */
+    private byte[] cutInsertLog(TransactionManager tm, DataManager dm) throws Exception {
+        if(open.isEmpty()) {
+            step(tm, dm);
+        }
+        long xid = open.get(random.nextInt(open.size()));
+        // 借用一个已有数据所在的页面来生成日志
+        byte[] value = randomValue();
+        long uid = dm.insert(xid, value);
+        inserted.get(xid).add(uid);
+        updated.get(xid).put(uid, value);
+        DataItem di = dm.read(uid);
+        byte[] log = Recover.insertLog(xid, di.page(), DataItem.wrapDataItemRaw(randomValue()));
+        di.release();
+        return log;
+    }
+
+    /**
+     * 把 [Size] [Checksum] [Data] 截断在中间的随机位置后追加到日志尾部
+     * LoggerImpl.log 先写日志、再更新 XChecksum，所以文件头的 XChecksum 保持不变
+     */
+    private void appendCut(File log, byte[] data) throws Exception {
+        byte[] entry = Bytes.concat(Parser.int2Byte(data.length), Parser.int2Byte(LoggerImpl.calChecksum(0, data)), data);
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            raf.seek(raf.length());
+            raf.write(entry, 0, 1 + random.nextInt(entry.length - 1));
+        }
+    }
+
+    private int verify(TransactionManager tm, DataManager dm) throws Exception {
+        int rows = 0;
+        for(Map.Entry<Long, byte[]> e : committed.entrySet()) {
+            DataItem di = dm.read(e.getKey());
+            if(di == null) {
+                throw new RuntimeException("committed uid " + e.getKey() + " lost");
+            }
+            SubArray sa = di.data();
+            byte[] value = Arrays.copyOfRange(sa.raw, sa.start, sa.end);
+            di.release();
+            if(!Arrays.equals(value, e.getValue())) {
+                throw new RuntimeException("committed uid " + e.getKey() + " has wrong value");
+            }
+            rows ++;
+        }
+        for(long xid : open) {
+            if(!tm.isAborted(xid)) {
+                throw new RuntimeException("active xid " + xid + " not aborted");
+            }
+            for(long uid : inserted.get(xid)) {
+                DataItem di = dm.read(uid);
+                if(di != null) {
+                    di.release();
+                    throw new RuntimeException("uid " + uid + " of active xid " + xid + " still valid");
+                }
+            }
+        }
+        return rows;
+    }
+
+    private byte[] randomValue() {
+        byte[] value = new byte[VALUE_LEN];
+        random.nextBytes(value);
+        return value;
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+}
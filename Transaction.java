@@ -12,6 +12,7 @@ public class Transaction {
     public Map<Long, Boolean> snapshot;
     public Exception err;
     public boolean autoAborted;
+    public int slot;    // 在 ActiveRegistry 中占用的槽位
 
     /**
      * 新建一个事务
@@ -36,6 +37,23 @@ public class Transaction {
         return t;
     }
 
+    /**
+     * 新建一个事务，快照从 ActiveRegistry 中获取，不需要持有全局锁
+     * @param slot 事务在 active 中占用的槽位，xid 已经 publish
+     */
+    public static Transaction newTransaction(long xid, int level, ActiveRegistry active, int slot) {
+        Transaction t = new Transaction();
+        t.xid = xid;
+        t.level = level;
+        t.slot = slot;
+        if(level != 0) {
+            t.snapshot = active.snapshot(slot, xid);
+        } else {
+            active.publishXmin(slot, xid);
+        }
+        return t;
+    }
+
     public boolean isInSnapshot(long xid) {
         if(xid == TransactionManagerImpl.SUPER_XID) {
             return false;
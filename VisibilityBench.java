@@ -0,0 +1,91 @@
+package top.guoziyang.mydb.backend.vm;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+
+/**
+ * 全表扫描时可见性判断的耗时对比：逐条 isVisible 与按页批量 isVisible
+ * 模拟多版本较多的表：每页的版本来自少数几个最近的事务，约一半已被删除
+ *
+ * 用法：VisibilityBench [页数] [每页版本数] [轮数]
+ */
+public class VisibilityBench {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int perPage = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        File dir = Files.createTempDirectory("mydb-visibility").toFile();
+        TransactionManager tm = TransactionManager.create(new File(dir, "bench").getPath());
+        try {
+            // 200 个事务，其中每 5 个有一个保持活跃
+            Map<Long, Transaction> active = new HashMap<>();
+            long[] xids = new long[200];
+            for(int i = 0; i < xids.length; i ++) {
+                xids[i] = tm.begin();
+                if(i % 5 == 0) {
+                    active.put(xids[i], null);
+                } else {
+                    tm.commit(xids[i]);
+                }
+            }
+
+            Random random = new Random(1);
+            long[][] xmins = new long[pages][perPage];
+            long[][] xmaxs = new long[pages][perPage];
+            for(int p = 0; p < pages; p ++) {
+                int base = random.nextInt(xids.length - 8);
+                for(int i = 0; i < perPage; i ++) {
+                    xmins[p][i] = xids[base + random.nextInt(8)];
+                    xmaxs[p][i] = random.nextBoolean() ? 0 : xids[base + random.nextInt(8)];
+                }
+            }
+
+            long reader = tm.begin();
+            System.out.println("level\tscalar(ns/version)\tbatch(ns/version)");
+            for(int level = 0; level <= 1; level ++) {
+                Transaction t = Transaction.newTransaction(reader, level, active);
+                long[][] expected = new long[pages][];
+                long scalar = Long.MAX_VALUE, batch = Long.MAX_VALUE;
+                for(int r = 0; r < rounds; r ++) {
+                    long start = System.nanoTime();
+                    for(int p = 0; p < pages; p ++) {
+                        long[] bitmap = new long[(perPage + 63) >>> 6];
+                        for(int i = 0; i < perPage; i ++) {
+                            if(Visibility.isVisible(tm, t, xmins[p][i], xmaxs[p][i])) {
+                                bitmap[i >>> 6] |= 1L << (i & 63);
+                            }
+                        }
+                        expected[p] = bitmap;
+                    }
+                    scalar = Math.min(scalar, System.nanoTime() - start);
+
+                    start = System.nanoTime();
+                    for(int p = 0; p < pages; p ++) {
+                        long[] bitmap = Visibility.isVisible(tm, t, xmins[p], xmaxs[p], perPage);
+                        if(!Arrays.equals(bitmap, expected[p])) {
+                            throw new RuntimeException("batch result differs on page " + p);
+                        }
+                    }
+                    batch = Math.min(batch, System.nanoTime() - start);
+                }
+                long versions = (long) pages * perPage;
+                System.out.println(level + "\t" + String.format("%.1f", (double) scalar / versions)
+                    + "\t" + String.format("%.1f", (double) batch / versions));
+            }
+        } finally {
+            tm.close();
+            for(File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package top.guoziyang.mydb.backend.dm.logger;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 使用 JDK 自带的 Deflater 压缩
+ */
+public class DeflateCodec implements LogCodec {
+
+    static final byte ID = 1;
+
+    private int level;
+
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(byte[] raw) {
+        Deflater deflater = new Deflater(level);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+        byte[] buf = new byte[1 << 14];
+        while(!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    @Override
+    public byte[] decode(byte[] data, int rawSize) throws Exception {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        byte[] raw = new byte[rawSize];
+        try {
+            int n = 0;
+            while(n < rawSize && !inflater.finished()) {
+                int k = inflater.inflate(raw, n, rawSize - n);
+                if(k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += k;
+            }
+            if(n != rawSize || !inflater.finished()) {
+                throw new DataFormatException("bad block");
+            }
+        } finally {
+            inflater.end();
+        }
+        return raw;
+    }
+}
@@ -0,0 +1,441 @@
+package top.guoziyang.mydb.backend.dm.logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.primitives.Bytes;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 备份中的日志，只读
+ *
+ * 由一个或多个依次相连的备份日志组成，每一个可以是普通的日志（.log），也可以是归档压缩后的日志（.logz），
+ * next、rewind 对两者完全相同，Recover 可以直接在其上恢复，已归档的部分按块解压。
+ * log、truncate 会抛出异常，不能用它打开数据库；Logger.open 也不会打开归档的日志。
+ *
+ * 只有备份完成、不再写入的日志才能归档。归档文件格式为：
+ * [Magic] [CodecId] [XChecksum] [Size] [Block1] [Block2] ... [BlockN]
+ * XChecksum 与 Size 为原日志的校验和与长度，打开时据此检查归档是否完整
+ * 每个块的格式为：
+ * [RawSize] [EncSize] [EncData]
+ * 块解压后为若干条完整的日志记录，与 LoggerImpl 中的格式相同：[Size] [Checksum] [Data]
+ */
+public class LogArchive implements Logger {
+
+    public static final String ARCHIVE_SUFFIX = ".logz";
+
+    // 与 Backup.BACKUP_SUFFIX 一致，备份完成后才写入
+    private static final String BACKUP_SUFFIX = ".backup";
+
+    private static final int MAGIC = 0x4c4f475a;
+    private static final int OF_CODEC = 4;
+    private static final int OF_XCHECKSUM = OF_CODEC + 1;
+    private static final int OF_SIZE = OF_XCHECKSUM + 4;
+    private static final int OF_BLOCKS = OF_SIZE + 8;
+
+    private static final int OF_RAW_SIZE = 0;
+    private static final int OF_ENC_SIZE = OF_RAW_SIZE + 4;
+    private static final int OF_ENC_DATA = OF_ENC_SIZE + 4;
+
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    // 块的索引：{所在的部分, 数据在文件中的位置, 在拼接后的日志中的位置, RawSize, EncSize}
+    private static final int B_PART = 0;
+    private static final int B_FILE_POS = 1;
+    private static final int B_RAW_POS = 2;
+    private static final int B_RAW_SIZE = 3;
+    private static final int B_ENC_SIZE = 4;
+
+    private static final Map<Byte, LogCodec> codecs = new ConcurrentHashMap<>();
+
+    static {
+        register(new DeflateCodec());
+    }
+
+    private static final ExecutorService archiver = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "log-archiver");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private RandomAccessFile[] files;
+    private FileChannel[] fcs;
+    private LogCodec[] partCodecs;  // 每个部分的压缩算法，未归档的为 null
+    private Lock lock;
+
+    private List<long[]> blocks;
+    private long size;              // 拼接后的日志的大小
+
+    private int nextBlock;          // next 下一个要读取的块
+    private byte[] block;           // next 当前读出的块
+    private int position;           // next 在当前块中的位置
+
+    private long encodedBytes;
+    private long decodedBytes;
+    private long decodeNanos;
+
+    LogArchive(int parts) {
+        files = new RandomAccessFile[parts];
+        fcs = new FileChannel[parts];
+        partCodecs = new LogCodec[parts];
+        lock = new ReentrantLock();
+        blocks = new ArrayList<>();
+        size = 4;
+    }
+
+    /**
+     * 注册压缩算法，解压时按归档文件头中的 id 查找
+     * 同一个实例会被多个线程共用，实现不能有状态
+     */
+    public static void register(LogCodec codec) {
+        LogCodec old = codecs.putIfAbsent(codec.id(), codec);
+        if(old != null && old.getClass() != codec.getClass()) {
+            throw new IllegalArgumentException("Log codec id " + codec.id() + " is used by " + old.getClass().getName());
+        }
+    }
+
+    /**
+     * 只读地打开 parts 依次相连的日志，每一个优先使用 .log，否则使用 .logz
+     * 打开时校验每一部分的 XChecksum（归档的部分会完整解压一遍），出错时抛出异常，不修改任何文件
+     */
+    static LogArchive open(String... parts) throws Exception {
+        LogArchive lg = new LogArchive(parts.length);
+        try {
+            for(int i = 0; i < parts.length; i ++) {
+                lg.openPart(i, parts[i]);
+            }
+        } catch(Exception e) {
+            lg.close();
+            throw e;
+        }
+        // 只统计恢复时的解压
+        lg.encodedBytes = lg.decodedBytes = lg.decodeNanos = 0;
+        lg.rewind();
+        return lg;
+    }
+
+    private void openPart(int i, String part) throws Exception {
+        File plain = new File(part+LoggerImpl.LOG_SUFFIX);
+        File archived = new File(part+ARCHIVE_SUFFIX);
+        File f = plain.exists() ? plain : archived;
+        if(!f.exists()) {
+            throw Error.FileNotExistsException;
+        }
+        files[i] = new RandomAccessFile(f, "r");
+        fcs[i] = files[i].getChannel();
+        if(f == plain) {
+            indexPlain(i);
+        } else {
+            indexArchive(i);
+        }
+    }
+
+    // 与 LoggerImpl.checkAndRemoveTail 相同地校验并忽略 BadTail，把日志记录按 BLOCK_SIZE 分块
+    private void indexPlain(int i) throws Exception {
+        FileChannel fc = fcs[i];
+        long fileSize = fc.size();
+        byte[] head = read(fc, 0, 4);
+        if(head == null) {
+            throw Error.BadLogFileException;
+        }
+        int xCheck = 0;
+        long pos = 4;
+        long start = 4;
+        while(true) {
+            byte[] log = LoggerImpl.readLog(fc, pos, fileSize);
+            if(pos > start && (log == null || pos + log.length - start > BLOCK_SIZE)) {
+                addBlock(i, start, (int) (pos - start), 0);
+                start = pos;
+            }
+            if(log == null) break;
+            xCheck = LoggerImpl.calChecksum(xCheck, log);
+            pos += log.length;
+        }
+        if(xCheck != Parser.parseInt(head)) {
+            throw Error.BadLogFileException;
+        }
+    }
+
+    // 读取归档文件头，扫描所有块头建立索引，并解压一遍校验原日志的长度和 XChecksum
+    private void indexArchive(int i) throws Exception {
+        FileChannel fc = fcs[i];
+        long fileSize = fc.size();
+        byte[] head = read(fc, 0, OF_BLOCKS);
+        if(head == null || Parser.parseInt(Arrays.copyOfRange(head, 0, OF_CODEC)) != MAGIC) {
+            throw Error.BadLogFileException;
+        }
+        partCodecs[i] = codecs.get(head[OF_CODEC]);
+        if(partCodecs[i] == null) {
+            throw Error.BadLogFileException;
+        }
+        int xChecksum = Parser.parseInt(Arrays.copyOfRange(head, OF_XCHECKSUM, OF_SIZE));
+        long rawSize = Parser.parseLong(Arrays.copyOfRange(head, OF_SIZE, OF_BLOCKS));
+
+        int first = blocks.size();
+        long pos = OF_BLOCKS;
+        long raw = 4;
+        while(pos < fileSize) {
+            byte[] bh = read(fc, pos, OF_ENC_DATA);
+            if(bh == null) {
+                throw Error.BadLogFileException;
+            }
+            int blockRaw = Parser.parseInt(Arrays.copyOfRange(bh, OF_RAW_SIZE, OF_ENC_SIZE));
+            int blockEnc = Parser.parseInt(Arrays.copyOfRange(bh, OF_ENC_SIZE, OF_ENC_DATA));
+            if(blockRaw < 0 || blockEnc < 0 || pos + OF_ENC_DATA + blockEnc > fileSize) {
+                throw Error.BadLogFileException;
+            }
+            addBlock(i, pos + OF_ENC_DATA, blockRaw, blockEnc);
+            pos += OF_ENC_DATA + blockEnc;
+            raw += blockRaw;
+        }
+        // 恰好在块的边界上被截断时，只能由总长度发现
+        if(raw != rawSize) {
+            throw Error.BadLogFileException;
+        }
+        int xCheck = 0;
+        for(int b = first; b < blocks.size(); b ++) {
+            xCheck = LoggerImpl.calChecksum(xCheck, decodeBlock(b));
+        }
+        if(xCheck != xChecksum) {
+            throw Error.BadLogFileException;
+        }
+    }
+
+    private void addBlock(int part, long filePos, int rawSize, int encSize) {
+        blocks.add(new long[]{part, filePos, size, rawSize, encSize});
+        size += rawSize;
+    }
+
+    private static byte[] read(FileChannel fc, long pos, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while(buf.hasRemaining()) {
+            if(fc.read(buf, pos + buf.position()) < 0) {
+                return null;
+            }
+        }
+        return buf.array();
+    }
+
+    // 读出第 i 个块的日志记录，归档的部分需要解压
+    private byte[] decodeBlock(int i) throws Exception {
+        long[] b = blocks.get(i);
+        LogCodec codec = partCodecs[(int) b[B_PART]];
+        int length = (int) (codec == null ? b[B_RAW_SIZE] : b[B_ENC_SIZE]);
+        byte[] data = read(fcs[(int) b[B_PART]], b[B_FILE_POS], length);
+        if(data == null) {
+            throw Error.BadLogFileException;
+        }
+        if(codec == null) {
+            return data;
+        }
+        long start = System.nanoTime();
+        byte[] raw = codec.decode(data, (int) b[B_RAW_SIZE]);
+        decodeNanos += System.nanoTime() - start;
+        encodedBytes += data.length;
+        decodedBytes += raw.length;
+        return raw;
+    }
+
+    @Override
+    public byte[] next() {
+        lock.lock();
+        try {
+            while(block == null || position >= block.length) {
+                if(nextBlock >= blocks.size()) {
+                    return null;
+                }
+                try {
+                    block = decodeBlock(nextBlock ++);
+                } catch(Exception e) {
+                    Panic.panic(e);
+                }
+                position = 0;
+            }
+            // [Size] [Checksum] [Data]，打开时已经校验过
+            int size = Parser.parseInt(Arrays.copyOfRange(block, position, position+4));
+            byte[] data = Arrays.copyOfRange(block, position+8, position+8+size);
+            position += 8 + size;
+            return data;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void rewind() {
+        lock.lock();
+        try {
+            nextBlock = 0;
+            block = null;
+            position = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void log(byte[] data) {
+        throw new UnsupportedOperationException("Backup log is read-only");
+    }
+
+    @Override
+    public void truncate(long x) throws Exception {
+        throw new UnsupportedOperationException("Backup log is read-only");
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void copyTo(String path, long from, long to) throws Exception {
+        LoggerImpl dest = LoggerImpl.createCopy(path);
+        lock.lock();
+        try {
+            from = Math.max(from, 4);
+            for(int i = 0; i < blocks.size(); i ++) {
+                long start = blocks.get(i)[B_RAW_POS];
+                long end = start + blocks.get(i)[B_RAW_SIZE];
+                if(end <= from || start >= to) {
+                    continue;
+                }
+                byte[] raw = decodeBlock(i);
+                dest.appendRaw(Arrays.copyOfRange(raw, (int) (Math.max(from, start) - start), (int) (Math.min(to, end) - start)));
+            }
+            dest.sync();
+        } finally {
+            lock.unlock();
+            dest.closeCopy();
+        }
+    }
+
+    /**
+     * 压缩率以及解压速度
+     */
+    public String stats() {
+        lock.lock();
+        try {
+            double ratio = encodedBytes == 0 ? 0 : (double) decodedBytes / encodedBytes;
+            double mbps = decodeNanos == 0 ? 0 : decodedBytes / 1e6 / (decodeNanos / 1e9);
+            return String.format("Archived log: %d -> %d bytes (%.2fx), decode %.1f MB/s.",
+                decodedBytes, encodedBytes, ratio, mbps);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            for(int i = 0; i < files.length; i ++) {
+                if(files[i] != null) {
+                    fcs[i].close();
+                    files[i].close();
+                }
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 把备份 path 中的日志压缩为归档文件，完成后删除原日志
+     * 先写入临时文件并刷盘，再原子地重命名，中途崩溃时原日志仍然完整
+     * 通常在数据库运行时于后台执行，出错时只抛出异常，不会 panic
+     * @return 压缩率
+     */
+    public static double archive(String path, LogCodec codec) throws Exception {
+        // 未注册的算法在归档时就拒绝，否则要到恢复时才发现无法解压
+        LogCodec registered = codecs.get(codec.id());
+        if(registered == null || registered.getClass() != codec.getClass()) {
+            throw new IllegalArgumentException("Log codec " + codec.getClass().getName() + " is not registered");
+        }
+        // 只归档已经完成的备份：数据库正在写入的日志被删除后，之后写入的日志会全部丢失
+        if(!new File(path+BACKUP_SUFFIX).exists()) {
+            throw new IllegalArgumentException(path + " is not a finished backup");
+        }
+        File plain = new File(path+LoggerImpl.LOG_SUFFIX);
+        if(!plain.exists()) {
+            throw Error.FileNotExistsException;
+        }
+        File tmp = new File(path+ARCHIVE_SUFFIX+".tmp");
+        long raw = 0, enc = 0;
+        try (RandomAccessFile in = new RandomAccessFile(plain, "r");
+             RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            FileChannel src = in.getChannel();
+            FileChannel dest = out.getChannel();
+            dest.truncate(0);
+            // 文件头最后再写
+            dest.write(ByteBuffer.wrap(new byte[OF_BLOCKS]));
+
+            byte[] head = read(src, 0, 4);
+            if(head == null) {
+                throw Error.BadLogFileException;
+            }
+            long srcSize = src.size();
+            long pos = 4;
+            int xCheck = 0;
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+            while(true) {
+                byte[] log = LoggerImpl.readLog(src, pos, srcSize);
+                if(log != null) {
+                    xCheck = LoggerImpl.calChecksum(xCheck, log);
+                    buf.write(log);
+                    pos += log.length;
+                }
+                if(buf.size() >= BLOCK_SIZE || (log == null && buf.size() > 0)) {
+                    byte[] block = buf.toByteArray();
+                    byte[] data = codec.encode(block);
+                    dest.write(ByteBuffer.wrap(Bytes.concat(Parser.int2Byte(block.length), Parser.int2Byte(data.length), data)));
+                    raw += block.length;
+                    enc += data.length;
+                    buf.reset();
+                }
+                if(log == null) break;
+            }
+            if(xCheck != Parser.parseInt(head)) {
+                throw Error.BadLogFileException;
+            }
+
+            byte[] header = Bytes.concat(Parser.int2Byte(MAGIC), new byte[]{codec.id()}, Parser.int2Byte(xCheck), Parser.long2Byte(pos));
+            dest.write(ByteBuffer.wrap(header), 0);
+            dest.force(true);
+        } catch(Exception e) {
+            tmp.delete();
+            throw e;
+        }
+
+        Files.move(tmp.toPath(), new File(path+ARCHIVE_SUFFIX).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(plain.toPath());
+        double ratio = enc == 0 ? 0 : (double) raw / enc;
+        System.out.println(String.format("Archive %s: %d -> %d bytes (%.2fx).", path, raw, enc, ratio));
+        return ratio;
+    }
+
+    /**
+     * 在后台线程中归档
+     */
+    public static Future<Double> archiveAsync(String path, LogCodec codec) {
+        return archiver.submit(() -> archive(path, codec));
+    }
+}
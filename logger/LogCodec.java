@@ -0,0 +1,11 @@
+package top.guoziyang.mydb.backend.dm.logger;
+
+/**
+ * 归档日志的压缩算法，id 会写入归档文件头，读取时据此选择解码器
+ * 需要先通过 LogArchive.register 注册，DeflateCodec 默认已注册
+ */
+public interface LogCodec {
+    byte id();
+    byte[] encode(byte[] raw);
+    byte[] decode(byte[] data, int rawSize) throws Exception;
+}
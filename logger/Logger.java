@@ -17,6 +17,15 @@ public interface Logger {
     byte[] next();
     void rewind();
     void close();
+    // 当前日志末尾的位置，即下一条日志的起始位置
+    long size();
+    // 把 [from, to) 之间的日志记录复制为一个独立的日志文件
+    void copyTo(String path, long from, long to) throws Exception;
+
+    // 只读地打开备份中依次相连的日志，已归档的部分按块解压，见 LogArchive
+    public static Logger openBackup(String... parts) throws Exception {
+        return LogArchive.open(parts);
+    }
 
     public static Logger create(String path) {
         File f = new File(path+LoggerImpl.LOG_SUFFIX);
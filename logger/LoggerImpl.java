@@ -1,5 +1,6 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
@@ -36,6 +37,8 @@ public class LoggerImpl implements Logger {
     
     public static final String LOG_SUFFIX = ".log";
 
+    private static final int COPY_BUFFER = 1 << 16;
+
     private RandomAccessFile file;
     private FileChannel fc;
     private Lock lock;
@@ -109,7 +112,7 @@ public class LoggerImpl implements Logger {
         rewind();
     }
     // 计算日志的checksum
-    private int calChecksum(int xCheck, byte[] log) {
+    public static int calChecksum(int xCheck, byte[] log) {
         for (byte b : log) {
             xCheck = xCheck * SEED + b;
         }
@@ -189,7 +192,8 @@ public class LoggerImpl implements Logger {
         // 将 tmp 中的字节转换为整数，得到日志记录的数据部分的字节长度
         int size = Parser.parseInt(tmp.array());
         // 检查当前位置加上日志记录总长度是否超过文件大小，如果超过则表示没有完整的日志，返回 null
-        if(position + size + OF_DATA > fileSize) {
+        // 垃圾尾部的 size 可能为负数，同样视为 BadTail
+        if(size < 0 || position + size + OF_DATA > fileSize) {
             return null;
         }
 
@@ -233,6 +237,115 @@ public class LoggerImpl implements Logger {
         }
     }
 
+    @Override
+    public long size() {
+        lock.lock();
+        try {
+            return fc.size();
+        } catch(IOException e) {
+            Panic.panic(e);
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void copyTo(String path, long from, long to) throws Exception {
+        LoggerImpl dest = createCopy(path);
+        try {
+            // 按位置读取，不影响正在进行的写入
+            dest.append(fc, Math.max(from, 4), to);
+            dest.sync();
+        } finally {
+            dest.closeCopy();
+        }
+    }
+
+    /**
+     * 按位置读出 pos 处完整的一条日志 [Size] [Checksum] [Data]，遇到 BadTail 返回 null
+     * 与 internNext 的判断相同，不改变 position，可以用于只读地扫描其他日志文件
+     */
+    static byte[] readLog(FileChannel fc, long pos, long fileSize) throws IOException {
+        if(pos + OF_DATA >= fileSize) {
+            return null;
+        }
+        ByteBuffer head = ByteBuffer.allocate(OF_DATA);
+        while(head.hasRemaining()) {
+            if(fc.read(head, pos + head.position()) < 0) {
+                return null;
+            }
+        }
+        int size = Parser.parseInt(Arrays.copyOfRange(head.array(), OF_SIZE, OF_CHECKSUM));
+        if(size < 0 || pos + OF_DATA + size > fileSize) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+        while(buf.hasRemaining()) {
+            if(fc.read(buf, pos + buf.position()) < 0) {
+                return null;
+            }
+        }
+        byte[] log = buf.array();
+        int checksum = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
+        if(calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length)) != checksum) {
+            return null;
+        }
+        return log;
+    }
+
+    /**
+     * 新建一个用于复制日志的文件
+     * 与 Logger.create 不同，出错时抛出异常而不是 panic，在线备份失败不能影响正在运行的数据库
+     */
+    static LoggerImpl createCopy(String path) throws Exception {
+        File f = new File(path+LOG_SUFFIX);
+        if(!f.createNewFile()) {
+            throw Error.FileExistsException;
+        }
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        FileChannel fc = raf.getChannel();
+        fc.write(ByteBuffer.wrap(Parser.int2Byte(0)), 0);
+        return new LoggerImpl(raf, fc, 0);
+    }
+
+    void closeCopy() throws IOException {
+        fc.close();
+        file.close();
+    }
+
+    /**
+     * 把 src 中 [from, to) 的日志记录原样追加到本文件末尾
+     * from 和 to 必须位于日志记录的边界上
+     */
+    private void append(FileChannel src, long from, long to) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER);
+        long pos = from;
+        while(pos < to) {
+            buf.clear();
+            buf.limit((int) Math.min(COPY_BUFFER, to - pos));
+            int n = src.read(buf, pos);
+            if(n < 0) {
+                throw Error.BadLogFileException;
+            }
+            appendRaw(Arrays.copyOf(buf.array(), n));
+            pos += n;
+        }
+    }
+
+    // 追加原始的日志数据，XChecksum 在 sync 时才写回
+    void appendRaw(byte[] raw) throws IOException {
+        xChecksum = calChecksum(xChecksum, raw);
+        fc.position(fc.size());
+        fc.write(ByteBuffer.wrap(raw));
+    }
+
+    void sync() throws IOException {
+        fc.position(0);
+        fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
+        fc.force(false);
+    }
+
     @Override
     public void rewind() {
         position = 4;